@@ -0,0 +1,86 @@
+package com.zsf.flume.source;
+
+import org.apache.flume.Event;
+import org.apache.flume.Source;
+import org.apache.flume.event.SimpleEvent;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ChannelWriter
+ * <p>
+ * Writer used as the CSVWriter target: every CSV line becomes one event, and events are sent to the
+ * channel processor of the source in batches of <tt>batch.size</tt>.
+ *
+ * @Program: flume-influxdb-source
+ * @ClassName: ChannelWriter
+ * @Author: zhoushengfeng
+ * @Create: 2019-10-18 16:42
+ * @Email: zhou_shengfeng@163.com
+ **/
+class ChannelWriter extends Writer {
+    
+    private final Source source;
+    private final Charset charset;
+    private final int batchSize;
+    
+    private List<Event> events = new ArrayList<>();
+    private Event event;
+    private Map<String, String> headers;
+    private Map<String, String> extraHeaders = Collections.emptyMap();
+    
+    ChannelWriter(Source source, String charsetName, int batchSize) {
+        this.source = source;
+        this.charset = Charset.forName(charsetName);
+        this.batchSize = batchSize;
+    }
+    
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        event = new SimpleEvent();
+        // drop the line end appended by CSVWriter
+        event.setBody(new String(cbuf, off, len - 1).getBytes(charset));
+        
+        headers = new HashMap<>(1 + extraHeaders.size());
+        headers.put("timestamp", String.valueOf(System.currentTimeMillis()));
+        headers.putAll(extraHeaders);
+        event.setHeaders(headers);
+        events.add(event);
+        
+        if (events.size() >= batchSize) {
+            flush();
+        }
+    }
+    
+    @Override
+    public void flush() throws IOException {
+        source.getChannelProcessor().processEventBatch(events);
+        events.clear();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+    
+    /**
+     * Headers added, next to timestamp, to the events written from now on
+     */
+    void setExtraHeaders(Map<String, String> extraHeaders) {
+        this.extraHeaders = extraHeaders;
+    }
+    
+    /**
+     * Drop the events not yet accepted by the channel, e.g. after a ChannelException
+     */
+    void discard() {
+        events.clear();
+    }
+}
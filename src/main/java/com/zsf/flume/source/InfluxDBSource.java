@@ -2,23 +2,16 @@ package com.zsf.flume.source;
 
 import com.opencsv.CSVWriter;
 import org.apache.flume.Context;
-import org.apache.flume.Event;
 import org.apache.flume.EventDeliveryException;
 import org.apache.flume.PollableSource;
 import org.apache.flume.conf.Configurable;
-import org.apache.flume.event.SimpleEvent;
 import org.apache.flume.source.AbstractSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.Writer;
-import java.nio.charset.Charset;
 import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * InfluxDB source
@@ -94,7 +87,8 @@ public class InfluxDBSource extends AbstractSource implements Configurable, Poll
         influxDBHelper = new InfluxDBHelper(influxDBSourceHelper);
         
         /* Instantiate the CSV Writer */
-        csvWriter = new CSVWriter(new ChannelWriter(), influxDBSourceHelper.getDelimiterEntry().charAt(0));
+        csvWriter = new CSVWriter(new ChannelWriter(this, influxDBSourceHelper.getDefaultCharsetResultSet(),
+                influxDBSourceHelper.getBatchSize()), influxDBSourceHelper.getDelimiterEntry().charAt(0));
     }
     
     /**
@@ -125,38 +119,4 @@ public class InfluxDBSource extends AbstractSource implements Configurable, Poll
         }
     }
     
-    private class ChannelWriter extends Writer {
-        private List<Event> events = new ArrayList<>();
-        private Event event;
-        private String s;
-        private Map<String, String> headers;
-        
-        @Override
-        public void write(char[] cbuf, int off, int len) throws IOException {
-            event = new SimpleEvent();
-            s = new String(cbuf);
-            event.setBody(s.substring(off, len - 1).getBytes(Charset.forName(influxDBSourceHelper.getDefaultCharsetResultSet())));
-            
-            headers = new HashMap<>(1);
-            headers.put("timestamp", String.valueOf(System.currentTimeMillis()));
-            event.setHeaders(headers);
-            events.add(event);
-            
-            if (events.size() >= influxDBSourceHelper.getBatchSize()) {
-                flush();
-            }
-        }
-        
-        @Override
-        public void flush() throws IOException {
-            getChannelProcessor().processEventBatch(events);
-            events.clear();
-        }
-        
-        @Override
-        public void close() throws IOException {
-            flush();
-        }
-    }
-    
 }
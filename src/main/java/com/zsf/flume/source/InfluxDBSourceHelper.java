@@ -59,11 +59,11 @@ public class InfluxDBSourceHelper {
     
     private static final String DEFAULT_STATUS_DIRECTORY = "/var/lib/flume";
     private static final int DEFAULT_QUERY_DELAY = 10000;
-    private static final int DEFAULT_BATCH_SIZE = 10000;
+    static final int DEFAULT_BATCH_SIZE = 10000;
     private static final int DEFAULT_MAX_ROWS = 100000;
     private static final String DEFAULT_INCREMENTAL_VALUE = "1970-01-01T08:00:00.000Z";
-    private static final String DEFAULT_DELIMITER_ENTRY = ",";
-    private static final Boolean DEFAULT_ENCLOSE_BY_QUOTES = true;
+    static final String DEFAULT_DELIMITER_ENTRY = ",";
+    static final Boolean DEFAULT_ENCLOSE_BY_QUOTES = true;
     
     private static final String SOURCE_NAME_STATUS_FILE = "SourceName";
     private static final String URL_STATUS_FILE = "URL";
@@ -71,7 +71,7 @@ public class InfluxDBSourceHelper {
     private static final String TABLE_STATUS_FILE = "Table";
     private static final String LAST_INDEX_STATUS_FILE = "LastTime";
     private static final String QUERY_STATUS_FILE = "Query";
-    private static final String DEFAULT_CHARSET_RESULTSET = "UTF-8";
+    static final String DEFAULT_CHARSET_RESULTSET = "UTF-8";
     private SimpleDateFormat simpleDateFormat;
     
     private FileReader fileReader;
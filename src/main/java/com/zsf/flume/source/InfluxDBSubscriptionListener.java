@@ -0,0 +1,730 @@
+package com.zsf.flume.source;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * InfluxDBSubscriptionListener
+ * <p>
+ * Non blocking listener for the writes InfluxDB pushes to its subscribers (<tt>CREATE SUBSCRIPTION</tt>).
+ * A single selector thread serves the HTTP <tt>/write</tt> and <tt>/ping</tt> endpoints and the UDP socket.
+ * Received bodies are handed to the {@link Handler} on a separate delivery thread, so a full flume channel
+ * only delays the requests waiting for it, never the sockets. An HTTP connection is not read while its
+ * request is being delivered. <p>
+ * Every write reserves its Content-Length from <tt>maxPendingBytes</tt> until it is answered, so the bodies
+ * buffered across all connections never take more memory than that, writes over it are answered with 503.
+ *
+ * @Program: flume-influxdb-source
+ * @ClassName: InfluxDBSubscriptionListener
+ * @Author: zhoushengfeng
+ * @Create: 2019-10-18 16:42
+ * @Email: zhou_shengfeng@163.com
+ **/
+class InfluxDBSubscriptionListener implements Runnable {
+    
+    private static final Logger LOG = LoggerFactory.getLogger(InfluxDBSubscriptionListener.class);
+    
+    private static final int MAX_HEADER_SIZE = 8192;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_UDP_PAYLOAD = 65536;
+    private static final int MAX_DATAGRAMS_PER_SELECT = 64;
+    private static final long SWEEP_INTERVAL = 1000L;
+    private static final long STOP_TIMEOUT = 10000L;
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    
+    /**
+     * Receives the line protocol bodies, always called from the delivery thread
+     */
+    interface Handler {
+        /**
+         * @param db database of the write, null for UDP or when not given
+         * @param rp retention policy of the write, null when not given
+         * @return the HTTP status to answer with: 204, 400 or 503
+         */
+        int write(byte[] buf, int off, int len, long precisionNanos, String db, String rp);
+    }
+    
+    private final String name;
+    private final String bind;
+    private final Integer httpPort;
+    private final Integer udpPort;
+    private final long udpPrecisionNanos;
+    private final int maxBodySize;
+    private final long maxPendingBytes;
+    private final int maxConnections;
+    private final long idleTimeout;
+    private final int deliveryQueueSize;
+    private final Handler handler;
+    
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private DatagramChannel datagramChannel;
+    private ByteBuffer datagram;
+    private ThreadPoolExecutor delivery;
+    private Thread thread;
+    private volatile boolean running;
+    
+    /* deliveries done, run on the selector thread */
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+    private final AtomicLong droppedDatagrams = new AtomicLong();
+    private int connections;
+    private long pendingBytes;
+    private long lastSweep;
+    
+    InfluxDBSubscriptionListener(String name, String bind, Integer httpPort, Integer udpPort, long udpPrecisionNanos,
+                                 int maxBodySize, long maxPendingBytes, int maxConnections, long idleTimeout,
+                                 int deliveryQueueSize, Handler handler) {
+        this.name = name;
+        this.bind = bind;
+        this.httpPort = httpPort;
+        this.udpPort = udpPort;
+        this.udpPrecisionNanos = udpPrecisionNanos;
+        this.maxBodySize = maxBodySize;
+        this.maxPendingBytes = maxPendingBytes;
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        this.deliveryQueueSize = deliveryQueueSize;
+        this.handler = handler;
+    }
+    
+    /**
+     * Bind the configured ports and start the listener and delivery threads
+     */
+    void start() throws IOException {
+        selector = Selector.open();
+        try {
+            if (httpPort != null) {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                serverChannel.bind(new InetSocketAddress(bind, httpPort));
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                LOG.info("Listening for influxDB subscription writes on http://{}:{}/write", bind, httpPort);
+            }
+            if (udpPort != null) {
+                datagramChannel = DatagramChannel.open();
+                datagramChannel.bind(new InetSocketAddress(bind, udpPort));
+                datagramChannel.configureBlocking(false);
+                datagramChannel.register(selector, SelectionKey.OP_READ);
+                datagram = ByteBuffer.allocate(MAX_UDP_PAYLOAD);
+                LOG.info("Listening for influxDB subscription writes on udp://{}:{}", bind, udpPort);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        
+        /* one delivery thread keeps the points in order and the handler single threaded */
+        delivery = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(deliveryQueueSize),
+                runnable -> {
+                    Thread deliveryThread = new Thread(runnable, "influxdb-subscription-delivery-" + name);
+                    deliveryThread.setDaemon(true);
+                    return deliveryThread;
+                });
+        
+        running = true;
+        lastSweep = System.currentTimeMillis();
+        thread = new Thread(this, "influxdb-subscription-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stop the listener thread, wait for the queued deliveries and close every channel
+     */
+    void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (delivery != null) {
+            delivery.shutdown();
+            try {
+                if (!delivery.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    LOG.warn("Pending influxDB subscription deliveries not finished, dropping them");
+                    delivery.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                delivery.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        close();
+    }
+    
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(SWEEP_INTERVAL);
+                Runnable completion;
+                while ((completion = completions.poll()) != null) {
+                    completion.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.channel() == datagramChannel) {
+                            receive();
+                        } else {
+                            HttpConnection connection = (HttpConnection) key.attachment();
+                            if (key.isWritable()) {
+                                connection.write();
+                            } else if (key.isReadable()) {
+                                connection.read();
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        if (key.attachment() == null) {
+                            /* never give up the listening sockets */
+                            LOG.warn("Error on influxDB subscription socket", e);
+                        } else {
+                            LOG.debug("Closing influxDB subscription connection", e);
+                            closeConnection(key);
+                        }
+                    }
+                }
+                sweep();
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Error in influxDB subscription listener", e);
+            }
+        }
+    }
+    
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (connections >= maxConnections) {
+            LOG.warn("Refusing influxDB subscription connection from {}, max.connections {} reached",
+                    channel.getRemoteAddress(), maxConnections);
+            closeQuietly(channel);
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new HttpConnection(key, channel));
+        connections++;
+    }
+    
+    private void receive() throws IOException {
+        /* bounded, so a steady UDP stream can't starve the HTTP connections */
+        for (int i = 0; i < MAX_DATAGRAMS_PER_SELECT; i++) {
+            datagram.clear();
+            if (datagramChannel.receive(datagram) == null) {
+                return;
+            }
+            if (datagram.position() == 0) {
+                continue;
+            }
+            byte[] payload = new byte[datagram.position()];
+            System.arraycopy(datagram.array(), 0, payload, 0, payload.length);
+            try {
+                delivery.execute(() -> {
+                    try {
+                        if (handler.write(payload, 0, payload.length, udpPrecisionNanos, null, null) == 503) {
+                            droppedDatagrams.incrementAndGet();
+                        }
+                    } catch (RuntimeException e) {
+                        LOG.error("Error delivering influxDB subscription datagram", e);
+                        droppedDatagrams.incrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                droppedDatagrams.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Close the connections idle for more than idle.timeout and report the dropped datagrams
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < SWEEP_INTERVAL) {
+            return;
+        }
+        lastSweep = now;
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (key.isValid() && attachment instanceof HttpConnection
+                    && ((HttpConnection) attachment).isIdle(now)) {
+                LOG.debug("Closing influxDB subscription connection idle for {} ms", idleTimeout);
+                closeConnection(key);
+            }
+        }
+        long dropped = droppedDatagrams.getAndSet(0);
+        if (dropped > 0) {
+            LOG.warn("Dropped {} influxDB subscription UDP datagrams, flume channel or delivery queue full", dropped);
+        }
+    }
+    
+    /**
+     * Run a body through the handler on the delivery thread, then complete the connection on the selector
+     * thread. A full delivery queue is answered with 503 right away.
+     */
+    private void deliver(HttpConnection connection, byte[] buf, int off, int len, long precisionNanos,
+                         String db, String rp) {
+        try {
+            delivery.execute(() -> {
+                int code;
+                try {
+                    code = handler.write(buf, off, len, precisionNanos, db, rp);
+                } catch (RuntimeException e) {
+                    LOG.error("Error delivering influxDB subscription write", e);
+                    code = 503;
+                }
+                int status = code;
+                completions.add(() -> connection.complete(status));
+                selector.wakeup();
+            });
+        } catch (RejectedExecutionException e) {
+            /* completed on the next round, not from inside process() */
+            completions.add(() -> connection.complete(503));
+            selector.wakeup();
+        }
+    }
+    
+    private void closeConnection(SelectionKey key) {
+        if (key.isValid()) {
+            connections--;
+        }
+        HttpConnection connection = (HttpConnection) key.attachment();
+        if (!connection.delivering) {
+            /* else the delivery thread still holds the body, released by complete() */
+            connection.release();
+        }
+        closeQuietly(key);
+    }
+    
+    private void close() {
+        if (selector != null && selector.isOpen()) {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing selector", e);
+            }
+        }
+        closeQuietly(serverChannel);
+        closeQuietly(datagramChannel);
+    }
+    
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        closeQuietly(key.channel());
+    }
+    
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing channel", e);
+        }
+    }
+    
+    /**
+     * One HTTP/1.1 connection. Requests are read into a single buffer that grows with the bytes received,
+     * up to the header limit or the declared body, and are answered in order.
+     */
+    private class HttpConnection {
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private ByteBuffer out;
+        private boolean interim;
+        private boolean delivering;
+        private long lastActivity = System.currentTimeMillis();
+        
+        /* current request, headerEnd < 0 while the header is incomplete */
+        private int headerEnd = -1;
+        private int contentLength;
+        private int reserved;
+        private int status;
+        private String error;
+        private boolean ping;
+        private boolean expectContinue;
+        private long precisionNanos;
+        private String db, rp;
+        private boolean keepAlive;
+        
+        HttpConnection(SelectionKey key, SocketChannel channel) {
+            this.key = key;
+            this.channel = channel;
+        }
+        
+        boolean isIdle(long now) {
+            return !delivering && now - lastActivity > idleTimeout;
+        }
+        
+        void read() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            if (!in.hasRemaining()) {
+                int limit = headerEnd < 0 ? MAX_HEADER_SIZE : headerEnd + contentLength;
+                grow(Math.min(in.capacity() * 2, limit));
+            }
+            if (channel.read(in) < 0) {
+                closeConnection(key);
+                return;
+            }
+            process();
+        }
+        
+        void write() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            if (flush()) {
+                process();
+            }
+        }
+        
+        /**
+         * Answer a delivered request, called on the selector thread
+         */
+        void complete(int code) {
+            delivering = false;
+            if (!key.isValid()) {
+                release();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            try {
+                consume();
+                respond(code, code == 400 ? "partial write: unable to parse points"
+                        : code == 503 ? "flume channel is full" : null, keepAlive);
+                if (flush()) {
+                    process();
+                }
+            } catch (IOException e) {
+                LOG.debug("Closing influxDB subscription connection", e);
+                closeConnection(key);
+            }
+        }
+        
+        /**
+         * Handle the buffered requests in order, until one is incomplete, delivering, or waiting
+         * for its response to be written
+         */
+        private void process() throws IOException {
+            while (key.isValid() && out == null && !delivering) {
+                byte[] buf = in.array();
+                if (headerEnd < 0) {
+                    int end = indexOfHeaderEnd(buf, in.position());
+                    if (end < 0) {
+                        if (in.position() >= MAX_HEADER_SIZE) {
+                            respond(431, "request header too large", false);
+                            flush();
+                        }
+                        return;
+                    }
+                    headerEnd = end;
+                    parseHeader(new String(buf, 0, headerEnd, StandardCharsets.ISO_8859_1));
+                    if (status == 0 && pendingBytes + contentLength > maxPendingBytes) {
+                        status = 503;
+                        error = "too many pending writes";
+                    }
+                    if (status != 0) {
+                        /* the body was not read, the rest of the stream can't be trusted */
+                        respond(status, error, false);
+                        flush();
+                        return;
+                    }
+                    reserved = contentLength;
+                    pendingBytes += reserved;
+                    if (expectContinue && in.position() < headerEnd + contentLength) {
+                        out = ByteBuffer.wrap(CONTINUE);
+                        interim = true;
+                        if (!flush()) {
+                            return;
+                        }
+                    }
+                }
+                if (in.position() < headerEnd + contentLength) {
+                    return;
+                }
+                
+                if (ping || contentLength == 0) {
+                    consume();
+                    respond(204, null, keepAlive);
+                    if (!flush()) {
+                        return;
+                    }
+                    continue;
+                }
+                delivering = true;
+                key.interestOps(0);
+                deliver(this, buf, headerEnd, contentLength, precisionNanos, db, rp);
+            }
+        }
+        
+        /**
+         * Drop the current request from the buffer, keeping the bytes of a pipelined one
+         */
+        private void consume() {
+            in.flip();
+            in.position(headerEnd + contentLength);
+            in.compact();
+            if (in.capacity() > MAX_HEADER_SIZE && in.position() <= MAX_HEADER_SIZE) {
+                grow(MAX_HEADER_SIZE);
+            }
+            headerEnd = -1;
+            release();
+        }
+        
+        /**
+         * Give the bytes reserved by the current request back to maxPendingBytes
+         */
+        private void release() {
+            pendingBytes -= reserved;
+            reserved = 0;
+        }
+        
+        private void parseHeader(String header) {
+            status = 0;
+            error = null;
+            ping = false;
+            expectContinue = false;
+            contentLength = 0;
+            precisionNanos = 1L;
+            db = null;
+            rp = null;
+            
+            String[] lines = header.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3) {
+                status = 400;
+                error = "malformed request line";
+                return;
+            }
+            String method = requestLine[0];
+            String target = requestLine[1];
+            keepAlive = "HTTP/1.1".equals(requestLine[2]);
+            
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    try {
+                        long length = Long.parseLong(value);
+                        if (length < 0) {
+                            throw new NumberFormatException(value);
+                        }
+                        if (length > maxBodySize) {
+                            status = 413;
+                            error = "request entity too large";
+                            return;
+                        }
+                        contentLength = (int) length;
+                    } catch (NumberFormatException e) {
+                        status = 400;
+                        error = "invalid Content-Length";
+                        return;
+                    }
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name) && !"identity".equalsIgnoreCase(value)) {
+                    status = 411;
+                    error = "Content-Length required";
+                    return;
+                } else if ("Content-Encoding".equalsIgnoreCase(name) && !"identity".equalsIgnoreCase(value)) {
+                    status = 415;
+                    error = "unsupported Content-Encoding " + value;
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    if ("close".equalsIgnoreCase(value)) {
+                        keepAlive = false;
+                    } else if ("keep-alive".equalsIgnoreCase(value)) {
+                        keepAlive = true;
+                    }
+                } else if ("Expect".equalsIgnoreCase(name) && "100-continue".equalsIgnoreCase(value)) {
+                    expectContinue = true;
+                }
+            }
+            
+            int query = target.indexOf('?');
+            String path = query < 0 ? target : target.substring(0, query);
+            if ("/ping".equals(path)) {
+                ping = true;
+                return;
+            }
+            if (!"/write".equals(path)) {
+                status = 404;
+                error = "not found";
+                return;
+            }
+            if (!"POST".equals(method)) {
+                status = 405;
+                error = "method not allowed";
+                return;
+            }
+            if (status != 0) {
+                return;
+            }
+            if (query >= 0) {
+                for (String param : target.substring(query + 1).split("&")) {
+                    int equals = param.indexOf('=');
+                    if (equals < 0) {
+                        continue;
+                    }
+                    try {
+                        /* InfluxDB sends rp= and precision= even when empty, that means not given */
+                        String value = URLDecoder.decode(param.substring(equals + 1), "UTF-8");
+                        if (value.isEmpty()) {
+                            continue;
+                        }
+                        switch (param.substring(0, equals)) {
+                            case "precision":
+                                precisionNanos = LineProtocolParser.precisionToNanos(value);
+                                break;
+                            case "db":
+                                db = value;
+                                break;
+                            case "rp":
+                                rp = value;
+                                break;
+                            default:
+                                break;
+                        }
+                    } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+                        status = 400;
+                        error = e.getMessage();
+                        return;
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Queue the response, it is written by {@link #flush()}
+         */
+        private void respond(int code, String message, boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            
+            String body = message == null ? "" : "{\"error\":\"" + message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+            StringBuilder response = new StringBuilder(128)
+                    .append("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n")
+                    .append("X-Influxdb-Version: 1.x\r\n");
+            if (code != 204) {
+                response.append("Content-Type: application/json\r\n")
+                        .append("Content-Length: ").append(body.length()).append("\r\n");
+            }
+            if (!keepAlive) {
+                response.append("Connection: close\r\n");
+            }
+            response.append("\r\n").append(body);
+            
+            out = ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.UTF_8));
+            interim = false;
+        }
+        
+        /**
+         * Write the queued response, waiting for OP_WRITE when the socket is full
+         *
+         * @return true when the connection can go on reading requests
+         */
+        private boolean flush() throws IOException {
+            channel.write(out);
+            if (out.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            out = null;
+            if (!interim && !keepAlive) {
+                closeConnection(key);
+                return false;
+            }
+            interim = false;
+            key.interestOps(SelectionKey.OP_READ);
+            return true;
+        }
+        
+        private void grow(int capacity) {
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            in.flip();
+            grown.put(in);
+            in = grown;
+        }
+    }
+    
+    private static int indexOfHeaderEnd(byte[] buf, int limit) {
+        for (int i = 3; i < limit; i++) {
+            if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+    
+    private static String reason(int code) {
+        switch (code) {
+            case 204:
+                return "No Content";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 411:
+                return "Length Required";
+            case 413:
+                return "Request Entity Too Large";
+            case 415:
+                return "Unsupported Media Type";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Error";
+        }
+    }
+}
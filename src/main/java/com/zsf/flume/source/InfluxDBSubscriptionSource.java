@@ -0,0 +1,197 @@
+package com.zsf.flume.source;
+
+import com.opencsv.CSVWriter;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.EventDrivenSource;
+import org.apache.flume.FlumeException;
+import org.apache.flume.conf.Configurable;
+import org.apache.flume.conf.ConfigurationException;
+import org.apache.flume.source.AbstractSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * InfluxDB subscription source
+ * <p>
+ * Push mode alternative to {@link InfluxDBSource}: instead of polling with <tt>run.query.delay</tt>, it listens
+ * for the line protocol InfluxDB forwards to subscribers created with
+ * <tt>CREATE SUBSCRIPTION "flume" ON "db"."autogen" DESTINATIONS ALL 'http://host:port'</tt> (or 'udp://host:port')
+ * and sends every point to the channel as one CSV event, <tt>[time, measurement, tagKey=tagValue..., fieldKey=fieldValue...]</tt>,
+ * with the same delimiter, quoting, charset and headers as {@link InfluxDBSource}, plus the <tt>db</tt> and
+ * <tt>rp</tt> headers of the HTTP write, so points of several subscribed databases can be told apart. <p>
+ * Delivery is at-least-once: a body with more points than <tt>batch.size</tt> goes to the channel in several
+ * batches, and when the channel fills up in the middle the batches already sent stay there while the write is
+ * answered with 503. A client retrying that write duplicates those points. <p>
+ * <p>
+ * Configuration parameters readed from flume configuration file:
+ * <tt>type: </tt> com.zsf.flume.source.InfluxDBSubscriptionSource <p>
+ * <tt>bind: </tt> address to listen on (default 0.0.0.0) <p>
+ * <tt>http.port: </tt> port for the HTTP /write endpoint <p>
+ * <tt>udp.port: </tt> port for UDP line protocol, at least one of http.port and udp.port is required <p>
+ * <tt>udp.precision: </tt> timestamp precision of UDP points (default ns) <p>
+ * <tt>max.body.size: </tt> max size in bytes of one HTTP write <p>
+ * <tt>max.pending.bytes: </tt> max bytes of the HTTP writes being received or delivered across all connections,
+ * more are answered with 503 <p>
+ * <tt>max.connections: </tt> max concurrent HTTP connections, more are refused <p>
+ * <tt>idle.timeout: </tt> ms before an HTTP connection without activity is closed <p>
+ * <tt>delivery.queue.size: </tt> writes waiting for the channel, more are answered with 503 or dropped (UDP) <p>
+ * <tt>batch.size: </tt> Batch size to send events from flume source to flume channel <p>
+ *
+ * @Program: flume-influxdb-source
+ * @ClassName: InfluxDBSubscriptionSource
+ * @Author: zhoushengfeng
+ * @Create: 2019-10-18 16:42
+ * @Email: zhou_shengfeng@163.com
+ **/
+public class InfluxDBSubscriptionSource extends AbstractSource implements Configurable, EventDrivenSource,
+        InfluxDBSubscriptionListener.Handler {
+    
+    private static final Logger LOG = LoggerFactory.getLogger(InfluxDBSubscriptionSource.class);
+    
+    private static final String DEFAULT_BIND = "0.0.0.0";
+    private static final String DEFAULT_UDP_PRECISION = "ns";
+    private static final int DEFAULT_MAX_BODY_SIZE = 25000000;
+    private static final long DEFAULT_MAX_PENDING_BYTES = 50000000L;
+    private static final int DEFAULT_MAX_CONNECTIONS = 256;
+    private static final long DEFAULT_IDLE_TIMEOUT = 60000L;
+    private static final int DEFAULT_DELIVERY_QUEUE_SIZE = 100;
+    
+    private String bind;
+    private Integer httpPort, udpPort;
+    private long udpPrecisionNanos;
+    private int maxBodySize, maxConnections, deliveryQueueSize, batchSize;
+    private long maxPendingBytes, idleTimeout;
+    private String delimiterEntry, defaultCharsetResultSet;
+    private boolean encloseByQuotes;
+    
+    private LineProtocolParser parser;
+    private ChannelWriter channelWriter;
+    private CSVWriter csvWriter;
+    private InfluxDBSubscriptionListener listener;
+    private Map<String, String> writeHeaders = new HashMap<>(2);
+    
+    /**
+     * Configure the source, load configuration properties
+     */
+    @Override
+    public void configure(Context context) {
+        LOG.info("Reading and processing configuration values for source " + getName());
+        
+        bind = context.getString("bind", DEFAULT_BIND);
+        httpPort = context.getInteger("http.port");
+        udpPort = context.getInteger("udp.port");
+        maxBodySize = context.getInteger("max.body.size", DEFAULT_MAX_BODY_SIZE);
+        maxPendingBytes = context.getLong("max.pending.bytes", DEFAULT_MAX_PENDING_BYTES);
+        maxConnections = context.getInteger("max.connections", DEFAULT_MAX_CONNECTIONS);
+        idleTimeout = context.getLong("idle.timeout", DEFAULT_IDLE_TIMEOUT);
+        deliveryQueueSize = context.getInteger("delivery.queue.size", DEFAULT_DELIVERY_QUEUE_SIZE);
+        batchSize = context.getInteger("batch.size", InfluxDBSourceHelper.DEFAULT_BATCH_SIZE);
+        delimiterEntry = context.getString("delimiter.entry", InfluxDBSourceHelper.DEFAULT_DELIMITER_ENTRY);
+        encloseByQuotes = context.getBoolean("enclose.by.quotes", InfluxDBSourceHelper.DEFAULT_ENCLOSE_BY_QUOTES);
+        defaultCharsetResultSet = context.getString("default.charset.resultset",
+                InfluxDBSourceHelper.DEFAULT_CHARSET_RESULTSET);
+        
+        if (httpPort == null && udpPort == null) {
+            throw new ConfigurationException("http.port or udp.port property not set");
+        }
+        if (maxPendingBytes < maxBodySize) {
+            throw new ConfigurationException("max.pending.bytes property must be at least max.body.size");
+        }
+        try {
+            udpPrecisionNanos = LineProtocolParser.precisionToNanos(
+                    context.getString("udp.precision", DEFAULT_UDP_PRECISION));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("udp.precision property: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Starts the source. Binds the listener ports.
+     */
+    @Override
+    public void start() {
+        
+        LOG.info("Starting influxDB subscription source {} ...", getName());
+        
+        parser = new LineProtocolParser();
+        channelWriter = new ChannelWriter(this, defaultCharsetResultSet, batchSize);
+        csvWriter = new CSVWriter(channelWriter, delimiterEntry.charAt(0));
+        listener = new InfluxDBSubscriptionListener(getName(), bind, httpPort, udpPort, udpPrecisionNanos,
+                maxBodySize, maxPendingBytes, maxConnections, idleTimeout, deliveryQueueSize, this);
+        try {
+            listener.start();
+        } catch (IOException e) {
+            throw new FlumeException("Unable to bind influxDB subscription listener on " + bind, e);
+        }
+        super.start();
+    }
+    
+    /**
+     * Stop the source. Close the listener ports and flush the pending events.
+     */
+    @Override
+    public void stop() {
+        
+        LOG.info("Stopping influxDB subscription source {} ...", getName());
+        
+        try {
+            listener.stop();
+            csvWriter.close();
+        } catch (IOException | ChannelException e) {
+            LOG.warn("Error CSVWriter object ", e);
+        } finally {
+            super.stop();
+        }
+    }
+    
+    /**
+     * Parse a line protocol body and send its points to the channel, called from the delivery thread
+     */
+    @Override
+    public int write(byte[] buf, int off, int len, long precisionNanos, String db, String rp) {
+        int end = off + len;
+        int invalid = 0;
+        String firstError = null;
+        
+        writeHeaders.clear();
+        if (db != null) {
+            writeHeaders.put("db", db);
+        }
+        if (rp != null) {
+            writeHeaders.put("rp", rp);
+        }
+        channelWriter.setExtraHeaders(writeHeaders);
+        
+        try {
+            for (int lineStart = off; lineStart < end; ) {
+                int lineEnd = LineProtocolParser.lineEnd(buf, lineStart, end);
+                try {
+                    if (parser.parse(buf, lineStart, lineEnd, precisionNanos)) {
+                        csvWriter.writeNext(parser.row(), encloseByQuotes);
+                    }
+                } catch (IllegalArgumentException e) {
+                    if (invalid++ == 0) {
+                        firstError = e.getMessage();
+                    }
+                }
+                lineStart = lineEnd + 1;
+            }
+            csvWriter.flush();
+        } catch (ChannelException | IOException e) {
+            LOG.warn("Error sending influxDB subscription points to channel", e);
+            channelWriter.discard();
+            return 503;
+        }
+        
+        if (invalid > 0) {
+            LOG.warn("Dropped {} invalid points, first error: {}", invalid, firstError);
+            return 400;
+        }
+        return 204;
+    }
+}
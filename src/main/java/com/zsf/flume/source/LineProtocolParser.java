@@ -0,0 +1,459 @@
+package com.zsf.flume.source;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * LineProtocolParser
+ * <p>
+ * Parses InfluxDB line protocol straight from the received bytes into a row for the CSVWriter:
+ * <tt>[time, measurement, tagKey=tagValue..., fieldKey=fieldValue...]</tt> <p>
+ * Points of the same measurement may carry different tags and fields, so every cell keeps its key.
+ * Keys keep their line protocol escaping (<tt>\,</tt> <tt>\ </tt> <tt>\=</tt>), so the first unescaped '='
+ * of a cell separates key and value. Values are unescaped, integer suffixes and string quotes are dropped
+ * and booleans are written as true/false. <p>
+ * Cells are decoded from a reused byte buffer, but each point still allocates its cell Strings, the
+ * time Instant and its ISO string, and a new row array whenever the width differs from the previous
+ * point. Not thread safe, one instance per delivery thread.
+ *
+ * @Program: flume-influxdb-source
+ * @ClassName: LineProtocolParser
+ * @Author: zhoushengfeng
+ * @Create: 2019-10-18 16:42
+ * @Email: zhou_shengfeng@163.com
+ **/
+class LineProtocolParser {
+    
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final byte[] MAX_UNSIGNED = "18446744073709551615".getBytes(StandardCharsets.US_ASCII);
+    private static final String[] BOOLEANS = {"t", "T", "true", "True", "TRUE", "f", "F", "false", "False", "FALSE"};
+    
+    private String[] row = new String[16];
+    private int width;
+    private byte[] cell = new byte[256];
+    private int cellLength;
+    
+    /* current position in the line being parsed */
+    private byte[] buf;
+    private int lineStart, pos, end;
+    
+    /**
+     * Parse one line of line protocol
+     *
+     * @param buf            bytes holding the line
+     * @param off            first byte of the line
+     * @param end            end of the line (exclusive), without the line feed
+     * @param precisionNanos nanoseconds per unit of the point timestamp
+     * @return false when the line is blank or a comment, true when {@link #row()} holds a point
+     * @throws IllegalArgumentException if the line is not valid line protocol
+     */
+    boolean parse(byte[] buf, int off, int end, long precisionNanos) {
+        while (end > off && (buf[end - 1] == '\r' || buf[end - 1] == ' ' || buf[end - 1] == '\t')) {
+            end--;
+        }
+        this.buf = buf;
+        this.lineStart = off;
+        this.pos = off;
+        this.end = end;
+        width = 1;
+        
+        skipSpaces();
+        if (pos >= end || buf[pos] == '#') {
+            return false;
+        }
+        
+        /* measurement and tag set */
+        cellLength = 0;
+        int start = scanName(false);
+        appendUnescaped(start, pos, false);
+        addCell();
+        while (pos < end && buf[pos] == ',') {
+            pos++;
+            readKey();
+            start = scanName(false);
+            appendUnescaped(start, pos, false);
+            addCell();
+        }
+        if (pos >= end || buf[pos] != ' ') {
+            throw error("missing fields");
+        }
+        skipSpaces();
+        
+        /* field set */
+        while (true) {
+            readKey();
+            readFieldValue();
+            addCell();
+            if (pos < end && buf[pos] == ',') {
+                pos++;
+                continue;
+            }
+            break;
+        }
+        if (pos < end && buf[pos] != ' ') {
+            throw error("unexpected character");
+        }
+        skipSpaces();
+        
+        long nanos;
+        try {
+            if (pos < end) {
+                nanos = Math.multiplyExact(readTimestamp(), precisionNanos);
+            } else {
+                nanos = System.currentTimeMillis() * 1000000L;
+            }
+        } catch (ArithmeticException e) {
+            throw error("timestamp out of range");
+        }
+        row[0] = DateTimeFormatter.ISO_INSTANT.format(
+                Instant.ofEpochSecond(Math.floorDiv(nanos, NANOS_PER_SECOND), Math.floorMod(nanos, NANOS_PER_SECOND)));
+        return true;
+    }
+    
+    /**
+     * Find the end of the line starting at off, the same way as InfluxDB's scanLine: escaped bytes are
+     * skipped and, in the field set, a line feed inside a quoted string value does not end the line
+     *
+     * @return offset of the line feed ending the line, or end when the last line has none
+     */
+    static int lineEnd(byte[] buf, int off, int end) {
+        boolean fields = false, quoted = false;
+        int equals = 0, commas = 0;
+        int i = off;
+        while (i < end) {
+            byte b = buf[i];
+            if (b == '\\' && i + 2 < end) {
+                i += 2;
+                continue;
+            }
+            if (b == ' ') {
+                fields = true;
+            }
+            if (fields && !quoted && b == '=') {
+                equals++;
+            } else if (fields && !quoted && b == ',') {
+                commas++;
+            } else if (fields && b == '"' && equals > commas) {
+                quoted = !quoted;
+            } else if (b == '\n' && !quoted) {
+                return i;
+            }
+            i++;
+        }
+        return end;
+    }
+    
+    /**
+     * @return the last parsed point, the returned array is reused by the next call to parse
+     */
+    String[] row() {
+        if (row.length != width) {
+            String[] exact = new String[width];
+            System.arraycopy(row, 0, exact, 0, width);
+            row = exact;
+        }
+        return row;
+    }
+    
+    /**
+     * Converts the <tt>precision</tt> parameter of the /write endpoint to nanoseconds per unit
+     */
+    static long precisionToNanos(String precision) {
+        if (precision == null || precision.isEmpty() || "n".equals(precision) || "ns".equals(precision)) {
+            return 1L;
+        }
+        switch (precision) {
+            case "u":
+            case "us":
+            case "\u00b5":
+                return 1000L;
+            case "ms":
+                return 1000000L;
+            case "s":
+                return NANOS_PER_SECOND;
+            case "m":
+                return 60L * NANOS_PER_SECOND;
+            case "h":
+                return 3600L * NANOS_PER_SECOND;
+            default:
+                throw new IllegalArgumentException("unknown precision " + precision);
+        }
+    }
+    
+    private void addCell() {
+        if (width == row.length) {
+            String[] grown = new String[width * 2];
+            System.arraycopy(row, 0, grown, 0, width);
+            row = grown;
+        }
+        row[width++] = new String(cell, 0, cellLength, StandardCharsets.UTF_8);
+        cellLength = 0;
+    }
+    
+    private void skipSpaces() {
+        while (pos < end && buf[pos] == ' ') {
+            pos++;
+        }
+    }
+    
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at column " + (pos - lineStart + 1));
+    }
+    
+    /**
+     * Scans a measurement, tag key, tag value or field key, leaving pos on the separator
+     *
+     * @param key true also stops at '='
+     * @return the start of the name
+     */
+    private int scanName(boolean key) {
+        int start = pos;
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b == '\\' && pos + 1 < end) {
+                pos += 2;
+                continue;
+            }
+            if (b == ' ' || b == ',' || (key && b == '=')) {
+                break;
+            }
+            pos++;
+        }
+        if (pos == start) {
+            throw error("empty name");
+        }
+        return start;
+    }
+    
+    /**
+     * Reads a tag or field key and its '=' into the cell, keeping the escapes
+     */
+    private void readKey() {
+        int start = scanName(true);
+        if (pos >= end || buf[pos] != '=') {
+            throw error("missing '='");
+        }
+        pos++;
+        append(start, pos);
+    }
+    
+    private void readFieldValue() {
+        int start = pos;
+        if (pos < end && buf[pos] == '"') {
+            pos++;
+            while (pos < end && buf[pos] != '"') {
+                if (buf[pos] == '\\' && pos + 1 < end) {
+                    pos++;
+                }
+                pos++;
+            }
+            if (pos >= end) {
+                pos = start;
+                throw error("unterminated string");
+            }
+            pos++;
+            appendUnescaped(start + 1, pos - 1, true);
+            return;
+        }
+        
+        while (pos < end && buf[pos] != ',' && buf[pos] != ' ') {
+            pos++;
+        }
+        int stop = pos;
+        pos = start;
+        if (stop == start) {
+            throw error("missing field value");
+        }
+        byte last = buf[stop - 1];
+        if (last == 'i' && isInteger(start, stop - 1)) {
+            append(start, stop - 1);
+        } else if (last == 'u' && isUnsigned(start, stop - 1)) {
+            append(start, stop - 1);
+        } else if (isFloat(start, stop)) {
+            append(start, stop);
+        } else {
+            String value = booleanValue(start, stop);
+            if (value == null) {
+                throw error("invalid field value");
+            }
+            for (int i = 0; i < value.length(); i++) {
+                appendByte((byte) value.charAt(i));
+            }
+        }
+        pos = stop;
+    }
+    
+    /**
+     * A signed 64 bit integer: optional '-' and digits
+     */
+    private boolean isInteger(int start, int stop) {
+        int i = start;
+        if (i < stop && buf[i] == '-') {
+            i++;
+        }
+        if (i == stop) {
+            return false;
+        }
+        boolean negative = i > start;
+        long value = 0;
+        try {
+            for (; i < stop; i++) {
+                if (buf[i] < '0' || buf[i] > '9') {
+                    return false;
+                }
+                /* accumulate negative, which also holds Long.MIN_VALUE */
+                value = Math.subtractExact(Math.multiplyExact(value, 10L), buf[i] - '0');
+            }
+        } catch (ArithmeticException e) {
+            return false;
+        }
+        return negative || value != Long.MIN_VALUE;
+    }
+    
+    /**
+     * An unsigned 64 bit integer: digits, at most 18446744073709551615
+     */
+    private boolean isUnsigned(int start, int stop) {
+        if (start == stop) {
+            return false;
+        }
+        for (int i = start; i < stop; i++) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                return false;
+            }
+        }
+        while (start < stop - 1 && buf[start] == '0') {
+            start++;
+        }
+        int length = stop - start;
+        if (length != MAX_UNSIGNED.length) {
+            return length < MAX_UNSIGNED.length;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf[start + i] != MAX_UNSIGNED[i]) {
+                return buf[start + i] < MAX_UNSIGNED[i];
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * A finite float: optional sign, digits with an optional '.', optional exponent
+     */
+    private boolean isFloat(int start, int stop) {
+        int i = start;
+        if (i < stop && (buf[i] == '-' || buf[i] == '+')) {
+            i++;
+        }
+        int digits = 0;
+        while (i < stop && buf[i] >= '0' && buf[i] <= '9') {
+            i++;
+            digits++;
+        }
+        if (i < stop && buf[i] == '.') {
+            i++;
+            while (i < stop && buf[i] >= '0' && buf[i] <= '9') {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (i == stop) {
+            return true;
+        }
+        if (buf[i] != 'e' && buf[i] != 'E') {
+            return false;
+        }
+        i++;
+        if (i < stop && (buf[i] == '-' || buf[i] == '+')) {
+            i++;
+        }
+        if (i == stop) {
+            return false;
+        }
+        for (; i < stop; i++) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                return false;
+            }
+        }
+        /* only exponents can leave the double range */
+        return !Double.isInfinite(Double.parseDouble(new String(buf, start, stop - start, StandardCharsets.ISO_8859_1)));
+    }
+    
+    private String booleanValue(int start, int stop) {
+        for (int b = 0; b < BOOLEANS.length; b++) {
+            String candidate = BOOLEANS[b];
+            if (candidate.length() != stop - start) {
+                continue;
+            }
+            int i = 0;
+            while (i < candidate.length() && buf[start + i] == candidate.charAt(i)) {
+                i++;
+            }
+            if (i == candidate.length()) {
+                return b < 5 ? "true" : "false";
+            }
+        }
+        return null;
+    }
+    
+    private long readTimestamp() {
+        int start = pos;
+        boolean negative = buf[pos] == '-';
+        if (negative) {
+            pos++;
+        }
+        long value = 0;
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b < '0' || b > '9') {
+                throw error("invalid timestamp");
+            }
+            value = Math.addExact(Math.multiplyExact(value, 10L), b - '0');
+            pos++;
+        }
+        if (negative && pos == start + 1) {
+            throw error("invalid timestamp");
+        }
+        return negative ? -value : value;
+    }
+    
+    private void appendByte(byte b) {
+        if (cellLength == cell.length) {
+            byte[] grown = new byte[cell.length * 2];
+            System.arraycopy(cell, 0, grown, 0, cellLength);
+            cell = grown;
+        }
+        cell[cellLength++] = b;
+    }
+    
+    private void append(int start, int stop) {
+        for (int i = start; i < stop; i++) {
+            appendByte(buf[i]);
+        }
+    }
+    
+    /**
+     * Appends to the cell dropping the backslash of escaped characters
+     *
+     * @param string true for string field values, where only '"' and '\\' are escaped
+     */
+    private void appendUnescaped(int start, int stop, boolean string) {
+        for (int i = start; i < stop; i++) {
+            byte b = buf[i];
+            if (b == '\\' && i + 1 < stop) {
+                byte next = buf[++i];
+                boolean escapable = string ? next == '"' || next == '\\' : next == ',' || next == ' ' || next == '=';
+                if (!escapable) {
+                    appendByte(b);
+                }
+                appendByte(next);
+            } else {
+                appendByte(b);
+            }
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package com.zsf.flume.source;
+
+import org.apache.flume.Channel;
+import org.apache.flume.ChannelSelector;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.channel.ReplicatingChannelSelector;
+import org.apache.flume.conf.Configurables;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * InfluxDBSubscriptionSourceTest
+ * <p>
+ * Sends line protocol to the listener over loopback sockets and checks the responses and the events
+ * reaching a memory channel.
+ *
+ * @Program: flume-influxdb-source
+ * @ClassName: InfluxDBSubscriptionSourceTest
+ * @Author: zhoushengfeng
+ * @Create: 2019-10-18 16:42
+ * @Email: zhou_shengfeng@163.com
+ **/
+public class InfluxDBSubscriptionSourceTest {
+    
+    private static final int TIMEOUT = 5000;
+    
+    private InfluxDBSubscriptionSource source;
+    private MemoryChannel channel;
+    private Map<String, String> properties = new HashMap<>();
+    private int port, udpPort;
+    
+    @Before
+    public void setUp() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0); DatagramSocket datagramSocket = new DatagramSocket(0)) {
+            port = socket.getLocalPort();
+            udpPort = datagramSocket.getLocalPort();
+        }
+        properties.put("bind", "127.0.0.1");
+        properties.put("http.port", String.valueOf(port));
+        properties.put("udp.port", String.valueOf(udpPort));
+        properties.put("udp.precision", "s");
+        properties.put("max.body.size", "4096");
+        properties.put("batch.size", "2");
+        start(1000);
+    }
+    
+    @After
+    public void tearDown() {
+        if (source != null) {
+            source.stop();
+        }
+        if (channel != null) {
+            channel.stop();
+        }
+    }
+    
+    @Test
+    public void writeIsAnsweredWith204() throws IOException {
+        assertEquals(204, post("/write?db=telegraf&rp=autogen&precision=s",
+                "cpu,host=a value=0.64,n=3i 1571400000\ncpu,region=us value=1 1571400000\nmem free=1 1571400000\n"));
+        
+        List<Event> events = take();
+        assertEquals(3, events.size());
+        assertEquals("\"2019-10-18T12:00:00Z\",\"cpu\",\"host=a\",\"value=0.64\",\"n=3\"", body(events.get(0)));
+        assertEquals("\"2019-10-18T12:00:00Z\",\"cpu\",\"region=us\",\"value=1\"", body(events.get(1)));
+        assertEquals("\"2019-10-18T12:00:00Z\",\"mem\",\"free=1\"", body(events.get(2)));
+        Map<String, String> headers = events.get(0).getHeaders();
+        assertEquals("telegraf", headers.get("db"));
+        assertEquals("autogen", headers.get("rp"));
+        assertTrue(headers.containsKey("timestamp"));
+    }
+    
+    @Test
+    public void emptyParametersAreNotGiven() throws IOException {
+        assertEquals(204, post("/write?db=telegraf&rp=&precision=&consistency=", "cpu value=1 1\n"));
+        assertEquals(204, post("/write?db=", "cpu value=2 2\n"));
+        
+        List<Event> events = take();
+        assertEquals(2, events.size());
+        assertEquals("\"1970-01-01T00:00:00.000000001Z\",\"cpu\",\"value=1\"", body(events.get(0)));
+        assertEquals("telegraf", events.get(0).getHeaders().get("db"));
+        assertFalse(events.get(0).getHeaders().containsKey("rp"));
+        assertFalse(events.get(1).getHeaders().containsKey("db"));
+    }
+    
+    @Test
+    public void lineFeedInsideStringField() throws IOException {
+        assertEquals(204, post("/write", "log msg=\"a\nb\" 2\nlog msg=\"c\" 3"));
+        
+        List<Event> events = take();
+        assertEquals(2, events.size());
+        assertEquals("\"1970-01-01T00:00:00.000000002Z\",\"log\",\"msg=a\nb\"", body(events.get(0)));
+        assertEquals("\"1970-01-01T00:00:00.000000003Z\",\"log\",\"msg=c\"", body(events.get(1)));
+    }
+    
+    @Test
+    public void invalidPointsAreAnsweredWith400() throws IOException {
+        assertEquals(400, post("/write?db=telegraf", "cpu value=abc 1\ncpu value=1 1\nbad line\n"));
+        
+        List<Event> events = take();
+        assertEquals(1, events.size());
+        assertEquals("\"1970-01-01T00:00:00.000000001Z\",\"cpu\",\"value=1\"", body(events.get(0)));
+    }
+    
+    @Test
+    public void bodyLargerThanTheInitialBuffer() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            body.append("cpu,host=host-").append(i).append(" value=").append(i).append(" 1571400000\n");
+        }
+        assertTrue(body.length() > 2048);
+        assertEquals(204, post("/write?precision=s", body.toString()));
+        
+        List<Event> events = take();
+        assertEquals(100, events.size());
+        assertEquals("\"2019-10-18T12:00:00Z\",\"cpu\",\"host=host-99\",\"value=99\"", body(events.get(99)));
+    }
+    
+    @Test
+    public void largeBodyIsAnsweredWith413() throws IOException {
+        /* answered from the header, before any body byte is sent */
+        assertEquals(413, request("POST /write HTTP/1.1\r\nHost: localhost\r\nContent-Length: 4097\r\n\r\n"));
+        assertTrue(take().isEmpty());
+    }
+    
+    @Test
+    public void writesOverMaxPendingBytesAreAnsweredWith503() throws IOException {
+        properties.put("max.pending.bytes", "4096");
+        start(1000);
+        
+        String body = "cpu value=1 1\n";
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            out.write(bytes("POST /write HTTP/1.1\r\nHost: localhost\r\nContent-Length: 4090\r\n\r\n" + body));
+            out.flush();
+            /* the first write holds 4090 bytes until its body is complete */
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            int status;
+            while ((status = post("/write", "cpu value=2 2\n")) == 204 && System.currentTimeMillis() < deadline) {
+                take();
+            }
+            assertEquals(503, status);
+            
+            StringBuilder padding = new StringBuilder();
+            for (int i = body.length(); i < 4090; i++) {
+                padding.append(i % 100 == 99 ? '\n' : ' ');
+            }
+            out.write(bytes(padding.toString()));
+            assertEquals(204, readResponse(socket.getInputStream()));
+        }
+        take();
+        /* given back once the first write is answered */
+        assertEquals(204, post("/write", "cpu value=3 3\n"));
+        assertEquals(1, take().size());
+    }
+    
+    @Test
+    public void fullChannelIsAnsweredWith503() throws IOException {
+        start(2);
+        
+        assertEquals(503, post("/write", "cpu value=1 1\ncpu value=2 2\ncpu value=3 3\ncpu value=4 4\n"));
+        /* at-least-once: the batch accepted before the channel filled up stays there */
+        assertEquals(2, take().size());
+        assertEquals(204, post("/write", "cpu value=5 5\n"));
+        assertEquals(1, take().size());
+    }
+    
+    @Test
+    public void pingAndUnknownPaths() throws IOException {
+        assertEquals(204, request("GET /ping HTTP/1.1\r\n\r\n"));
+        assertEquals(404, request("GET /query HTTP/1.1\r\n\r\n"));
+        assertEquals(405, request("GET /write HTTP/1.1\r\n\r\n"));
+        assertTrue(take().isEmpty());
+    }
+    
+    @Test
+    public void keepAliveAndPipelining() throws IOException {
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            
+            out.write(bytes(write("cpu value=1 1\n", false)));
+            assertEquals(204, readResponse(in));
+            
+            /* three requests in one packet, answered in order */
+            out.write(bytes(write("cpu value=2 2\n", false) + "GET /ping HTTP/1.1\r\n\r\n"
+                    + write("cpu value=3 3\ncpu value=4 4\n", true)));
+            assertEquals(204, readResponse(in));
+            assertEquals(204, readResponse(in));
+            assertEquals(204, readResponse(in));
+            assertEquals(-1, in.read());
+        }
+        
+        List<Event> events = take();
+        assertEquals(4, events.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("\"1970-01-01T00:00:00.00000000" + (i + 1) + "Z\",\"cpu\",\"value=" + (i + 1) + "\"",
+                    body(events.get(i)));
+        }
+    }
+    
+    @Test
+    public void expectContinue() throws IOException {
+        byte[] body = bytes("cpu value=1 1\n");
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(bytes("POST /write HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.length
+                    + "\r\nExpect: 100-continue\r\n\r\n"));
+            assertEquals(100, readResponse(in));
+            
+            out.write(body);
+            assertEquals(204, readResponse(in));
+        }
+        assertEquals(1, take().size());
+    }
+    
+    @Test
+    public void connectionsOverMaxAreRefused() throws IOException {
+        properties.put("max.connections", "1");
+        start(1000);
+        
+        try (Socket first = connect()) {
+            first.getOutputStream().write(bytes("GET /ping HTTP/1.1\r\n\r\n"));
+            assertEquals(204, readResponse(first.getInputStream()));
+            
+            try (Socket second = connect()) {
+                second.getOutputStream().write(bytes("GET /ping HTTP/1.1\r\n\r\n"));
+                assertEquals(-1, readOrReset(second.getInputStream()));
+            }
+        }
+        /* the slot is given back once the first connection is closed */
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (true) {
+            try {
+                assertEquals(204, request("GET /ping HTTP/1.1\r\n\r\n"));
+                break;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void idleConnectionsAreClosed() throws IOException {
+        properties.put("idle.timeout", "200");
+        start(1000);
+        
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write(bytes("GET /ping HTTP/1.1\r\n\r\n"));
+            assertEquals(204, readResponse(socket.getInputStream()));
+            /* closed by the sweep, at most idle.timeout plus one sweep interval later */
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+    
+    @Test
+    public void udpDatagram() throws Exception {
+        byte[] payload = bytes("cpu,host=a value=1 1571400000\nmem free=2 1571400000\n");
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.send(new DatagramPacket(payload, payload.length, InetAddress.getByName("127.0.0.1"), udpPort));
+        }
+        
+        List<Event> events = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (events.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            events.addAll(take());
+        }
+        assertEquals(2, events.size());
+        assertEquals("\"2019-10-18T12:00:00Z\",\"cpu\",\"host=a\",\"value=1\"", body(events.get(0)));
+        assertEquals("\"2019-10-18T12:00:00Z\",\"mem\",\"free=2\"", body(events.get(1)));
+        assertFalse(events.get(0).getHeaders().containsKey("db"));
+    }
+    
+    /**
+     * (Re)start the source with the current properties, over a new memory channel of the given capacity
+     */
+    private void start(int capacity) {
+        tearDown();
+        
+        Map<String, String> channelProperties = new HashMap<>();
+        channelProperties.put("capacity", String.valueOf(capacity));
+        channelProperties.put("transactionCapacity", String.valueOf(capacity));
+        channelProperties.put("keep-alive", "0");
+        channel = new MemoryChannel();
+        channel.setName("c1");
+        Configurables.configure(channel, new Context(channelProperties));
+        channel.start();
+        
+        ChannelSelector selector = new ReplicatingChannelSelector();
+        selector.setChannels(Collections.<Channel>singletonList(channel));
+        source = new InfluxDBSubscriptionSource();
+        source.setName("r1");
+        source.setChannelProcessor(new ChannelProcessor(selector));
+        source.configure(new Context(properties));
+        source.start();
+    }
+    
+    /**
+     * Take every event in the channel, one per transaction so any capacity will do
+     */
+    private List<Event> take() {
+        List<Event> events = new ArrayList<>();
+        while (true) {
+            Transaction transaction = channel.getTransaction();
+            transaction.begin();
+            Event event;
+            try {
+                event = channel.take();
+                transaction.commit();
+            } finally {
+                transaction.close();
+            }
+            if (event == null) {
+                return events;
+            }
+            events.add(event);
+        }
+    }
+    
+    private int post(String target, String body) throws IOException {
+        return request("POST " + target + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + bytes(body).length
+                + "\r\nConnection: close\r\n\r\n" + body);
+    }
+    
+    /**
+     * A keep-alive write request, or the last one of the connection when close is true
+     */
+    private static String write(String body, boolean close) {
+        return "POST /write HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + bytes(body).length
+                + (close ? "\r\nConnection: close" : "") + "\r\n\r\n" + body;
+    }
+    
+    /**
+     * Send one raw request and return the status of the response
+     */
+    private int request(String request) throws IOException {
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write(bytes(request));
+            return readResponse(socket.getInputStream());
+        }
+    }
+    
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(TIMEOUT);
+        return socket;
+    }
+    
+    /**
+     * Read one response, its header and its body, and return its status
+     */
+    private static int readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        int contentLength = 0;
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        for (int i = 0; i < contentLength; i++) {
+            if (in.read() < 0) {
+                throw new EOFException("response body truncated");
+            }
+        }
+        return Integer.parseInt(statusLine.split(" ")[1]);
+    }
+    
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("connection closed");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+    
+    /**
+     * A refused connection is either closed or reset, depending on the timing
+     */
+    private static int readOrReset(InputStream in) {
+        try {
+            return in.read();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+    
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static String body(Event event) {
+        return new String(event.getBody(), StandardCharsets.UTF_8);
+    }
+}
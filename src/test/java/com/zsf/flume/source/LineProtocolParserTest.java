@@ -0,0 +1,175 @@
+package com.zsf.flume.source;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * LineProtocolParserTest
+ *
+ * @Program: flume-influxdb-source
+ * @ClassName: LineProtocolParserTest
+ * @Author: zhoushengfeng
+ * @Create: 2019-10-18 16:42
+ * @Email: zhou_shengfeng@163.com
+ **/
+public class LineProtocolParserTest {
+    
+    private static final String TIME = "2019-10-18T12:00:00Z";
+    
+    private LineProtocolParser parser = new LineProtocolParser();
+    
+    @Test
+    public void tagsAndFieldsKeepTheirKeys() {
+        assertArrayEquals(new String[]{TIME, "cpu", "host=a", "region=us", "value=0.64", "load=3"},
+                parse("cpu,host=a,region=us value=0.64,load=3i 1571400000000000000"));
+        assertArrayEquals(new String[]{TIME, "cpu", "region=a", "value=1"},
+                parse("cpu,region=a value=1 1571400000000000000"));
+        assertArrayEquals(new String[]{TIME, "cpu", "b=1"}, parse("cpu b=1 1571400000000000000"));
+    }
+    
+    @Test
+    public void escapes() {
+        assertArrayEquals(new String[]{TIME, "cpu load,1", "host\\ name=server 01", "k\\=x=v,1=2", "f\\,1=1"},
+                parse("cpu\\ load\\,1,host\\ name=server\\ 01,k\\=x=v\\,1\\=2 f\\,1=1 1571400000000000000"));
+    }
+    
+    @Test
+    public void stringFields() {
+        assertArrayEquals(new String[]{TIME, "log", "msg=say \"hi\", a b=c", "path=c:\\tmp", "empty="},
+                parse("log msg=\"say \\\"hi\\\", a b=c\",path=\"c:\\\\tmp\",empty=\"\" 1571400000000000000"));
+        assertArrayEquals(new String[]{TIME, "log", "msg=\u4e2d\u6587"}, parse("log msg=\"\u4e2d\u6587\" 1571400000000000000"));
+    }
+    
+    @Test
+    public void booleans() {
+        String[] values = {"t", "T", "true", "True", "TRUE", "f", "F", "false", "False", "FALSE"};
+        for (int i = 0; i < values.length; i++) {
+            assertArrayEquals(new String[]{TIME, "m", "ok=" + (i < 5)}, parse("m ok=" + values[i] + " 1571400000000000000"));
+        }
+        assertInvalid("m ok=tRUE");
+        assertInvalid("m ok=yes");
+    }
+    
+    @Test
+    public void numbers() {
+        assertArrayEquals(new String[]{TIME, "m", "a=-3", "b=18446744073709551615", "c=-9223372036854775808",
+                        "d=1", "e=-1.5e3", "f=.5"},
+                parse("m a=-3i,b=18446744073709551615u,c=-9223372036854775808i,d=1,e=-1.5e3,f=.5 1571400000000000000"));
+        assertInvalid("m f=9223372036854775808i");
+        assertInvalid("m f=18446744073709551616u");
+        assertInvalid("m f=-1u");
+        assertInvalid("m f=1.5i");
+        assertInvalid("m f=1e999");
+        assertInvalid("m f=1.2.3");
+        assertInvalid("m f=1e");
+        assertInvalid("cpu,host=a value=abc");
+    }
+    
+    @Test
+    public void precision() {
+        assertArrayEquals(new String[]{"2019-10-18T12:00:00.123Z", "m", "f=1"},
+                parse("m f=1 1571400000123", LineProtocolParser.precisionToNanos("ms")));
+        assertArrayEquals(new String[]{TIME, "m", "f=1"},
+                parse("m f=1 1571400000", LineProtocolParser.precisionToNanos("s")));
+        assertArrayEquals(new String[]{TIME, "m", "f=1"},
+                parse("m f=1 436500", LineProtocolParser.precisionToNanos("h")));
+        assertArrayEquals(new String[]{"1969-12-31T23:59:59.999999999Z", "m", "f=1"}, parse("m f=1 -1"));
+        assertEquals(1000L, LineProtocolParser.precisionToNanos("u"));
+        assertEquals(1L, LineProtocolParser.precisionToNanos(null));
+        try {
+            LineProtocolParser.precisionToNanos("d");
+            fail("unknown precision accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void timestampOutOfRange() {
+        assertInvalid("m f=1 99999999999999999999");
+        byte[] line = "m f=1 9999999999999999".getBytes(StandardCharsets.UTF_8);
+        try {
+            parser.parse(line, 0, line.length, LineProtocolParser.precisionToNanos("s"));
+            fail("overflowing timestamp accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void blankAndCommentLines() {
+        byte[] lines = "  \r\n# comment\n".getBytes(StandardCharsets.UTF_8);
+        assertFalse(parser.parse(lines, 0, 3, 1L));
+        assertFalse(parser.parse(lines, 4, lines.length - 1, 1L));
+    }
+    
+    @Test
+    public void invalidLines() {
+        assertInvalid("cpu");
+        assertInvalid("cpu,host=a");
+        assertInvalid("bad line");
+        assertInvalid("cpu,host value=1");
+        assertInvalid("cpu,=a value=1");
+        assertInvalid("cpu value=");
+        assertInvalid("cpu msg=\"open");
+        assertInvalid("cpu msg=\"a\"b");
+        assertInvalid("cpu value=1 12x");
+        assertInvalid("cpu value=1 -");
+    }
+    
+    @Test
+    public void lineInsideBuffer() {
+        byte[] buf = "a f=1 1\r\ncpu,host=a value=1 1571400000000000000\r\nb f=2 2".getBytes(StandardCharsets.UTF_8);
+        int start = 9;
+        int end = buf.length - 8;
+        assertEquals('\n', buf[end]);
+        parser.parse(buf, start, end, 1L);
+        assertArrayEquals(new String[]{TIME, "cpu", "host=a", "value=1"}, parser.row());
+    }
+    
+    @Test
+    public void lineFeedInsideStringField() {
+        byte[] buf = ("log,host=a msg=\"a\nb\",n=1 2\n"
+                + "log msg=\"x=\\\"\n\" 3\ncpu value=1 4").getBytes(StandardCharsets.UTF_8);
+        int first = LineProtocolParser.lineEnd(buf, 0, buf.length);
+        assertEquals(26, first);
+        parser.parse(buf, 0, first, 1L);
+        assertArrayEquals(new String[]{"1970-01-01T00:00:00.000000002Z", "log", "host=a", "msg=a\nb", "n=1"},
+                parser.row());
+        
+        int second = LineProtocolParser.lineEnd(buf, first + 1, buf.length);
+        parser.parse(buf, first + 1, second, 1L);
+        assertArrayEquals(new String[]{"1970-01-01T00:00:00.000000003Z", "log", "msg=x=\"\n"}, parser.row());
+        
+        assertEquals(buf.length, LineProtocolParser.lineEnd(buf, second + 1, buf.length));
+        /* a quote in a tag value does not start a string */
+        byte[] tag = "cpu,host=\"a value=1\nmem free=1".getBytes(StandardCharsets.UTF_8);
+        assertEquals(19, LineProtocolParser.lineEnd(tag, 0, tag.length));
+    }
+    
+    private String[] parse(String line) {
+        return parse(line, 1L);
+    }
+    
+    private String[] parse(String line, long precisionNanos) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        parser.parse(bytes, 0, bytes.length, precisionNanos);
+        return parser.row().clone();
+    }
+    
+    private void assertInvalid(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        try {
+            parser.parse(bytes, 0, bytes.length, 1L);
+            fail("invalid line accepted: " + line);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}